@@ -32,12 +32,16 @@ INSERT INTO version VALUES (19);
 INSERT INTO version VALUES (21);
 INSERT INTO version VALUES (22);
 INSERT INTO version VALUES (23);
+INSERT INTO version VALUES (24);
 
 CREATE TABLE configurations (-- V23
   key VARCHAR NOT NULL,
   value VARCHAR NOT NULL DEFAULT ''
 );
 
+CREATE UNIQUE INDEX configurations_idx
+  ON configurations (key); --V24
+
 -- records:
 -- Primary objective: bibliographicrecordid, agencyid => content(blob)
 CREATE TABLE records (-- V2
@@ -364,6 +368,7 @@ CREATE TABLE queue (-- V2
   worker                VARCHAR(32)              NOT NULL, -- name of designated worker
   queued                TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT timeofday() :: TIMESTAMP, -- timestamp for when it has been put into the queue
   priority              NUMERIC(4)               NOT NULL DEFAULT 1000,
+  aged                  TIMESTAMP WITH TIME ZONE NOT NULL, -- V24 queued + priority * aging, maintained by queue_aged()
   CONSTRAINT queue_fk_worker FOREIGN KEY (worker) REFERENCES queueworkers (worker)
   -- NO primary key
   -- if it's claimed by worker
@@ -403,6 +408,8 @@ CREATE INDEX queue_idx_job
   ON queue (bibliographicrecordid, agencyid, worker);
 CREATE INDEX queue_idx_worker
   ON queue (worker, priority, queued); --V4, V22
+CREATE INDEX queue_idx_worker_aged
+  ON queue (worker, aged); --V24
 CREATE INDEX jobdiag_idx
   ON jobdiag (worker, error, queued, priority); --V7, V22
 -- DROP TYPE enqueueResult;
@@ -417,6 +424,122 @@ CREATE TABLE provider_log (-- V22
 CREATE UNIQUE INDEX provider_log_idx
   ON provider_log (provider);
 
+--
+-- Priority aging
+-- configurations key QUEUE_PRIORITY_AGING_SECONDS is the number of seconds on the queue
+-- that is worth one priority point. 0 (or no key) means strict priority, queued ordering.
+-- Only integers from 0 to 86400 are used, anything else counts as 0, so a bad value
+-- never makes enqueue/dequeue fail.
+--
+-- Since every job ages at the same rate, ordering by effective priority at any given time
+-- is the same as ordering by queued + priority * aging, which is stored in queue.aged and
+-- indexed. When the effective setting changes (or configurations is truncated) queue.aged
+-- is recalculated for all jobs in the same transaction, see queue_reage().
+--
+CREATE OR REPLACE FUNCTION queue_priority_aging(value_ VARCHAR)
+  RETURNS INTEGER AS $$ -- V24
+SELECT CASE WHEN value_ ~ '^[0-9]{1,5}$'
+  THEN CASE WHEN value_ :: INTEGER <= 86400
+    THEN value_ :: INTEGER
+       ELSE 0 END
+       ELSE 0 END;
+$$
+LANGUAGE sql IMMUTABLE;
+
+
+CREATE OR REPLACE FUNCTION queue_priority_aging()
+  RETURNS INTEGER AS $$ -- V24
+SELECT COALESCE((SELECT queue_priority_aging(value)
+                 FROM configurations
+                 WHERE key = 'QUEUE_PRIORITY_AGING_SECONDS'), 0);
+$$
+LANGUAGE sql STABLE;
+
+
+CREATE OR REPLACE FUNCTION queue_aged()
+  RETURNS TRIGGER AS $$ -- V24
+BEGIN
+  NEW.aged = NEW.queued + make_interval(secs => NEW.priority * queue_priority_aging());
+  RETURN NEW;
+END;
+$$
+LANGUAGE plpgsql;
+
+CREATE TRIGGER queue_aged_trigger
+  BEFORE INSERT OR UPDATE OF queued, priority
+  ON queue
+  FOR EACH ROW
+EXECUTE PROCEDURE queue_aged();
+
+
+CREATE OR REPLACE FUNCTION queue_reage(aging_ INTEGER)
+  RETURNS VOID AS $$ -- V24
+BEGIN
+  -- EXCLUSIVE (unlike SHARE ROW EXCLUSIVE) also conflicts with FOR UPDATE, so no worker
+  -- can lock a row the UPDATE below has yet to reach - that would deadlock.
+  -- NOTE: This waits for all transactions that have enqueued or dequeued to finish, and
+  -- blocks all enqueue AND dequeue until this transaction commits or rolls back.
+  LOCK TABLE queue IN EXCLUSIVE MODE;
+  UPDATE queue SET aged = queued + make_interval(secs => priority * aging_);
+END;
+$$
+LANGUAGE plpgsql;
+
+
+CREATE OR REPLACE FUNCTION queue_aging_changed()
+  RETURNS TRIGGER AS $$ -- V24
+DECLARE
+  old_aging_ INTEGER := 0;
+  new_aging_ INTEGER := 0;
+BEGIN
+  IF TG_OP <> 'INSERT'
+  THEN
+    IF OLD.key = 'QUEUE_PRIORITY_AGING_SECONDS'
+    THEN
+      old_aging_ = queue_priority_aging(OLD.value);
+    END IF;
+  END IF;
+  IF TG_OP <> 'DELETE'
+  THEN
+    IF NEW.key = 'QUEUE_PRIORITY_AGING_SECONDS'
+    THEN
+      new_aging_ = queue_priority_aging(NEW.value);
+    END IF;
+  END IF;
+  -- Rewriting the queue is expensive, only do it if the effective value changes
+  IF old_aging_ <> new_aging_
+  THEN
+    PERFORM queue_reage(new_aging_);
+  END IF;
+  RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql;
+
+CREATE TRIGGER queue_aging_changed_trigger
+  AFTER INSERT OR UPDATE OR DELETE
+  ON configurations
+  FOR EACH ROW
+EXECUTE PROCEDURE queue_aging_changed();
+
+
+CREATE OR REPLACE FUNCTION queue_aging_truncated()
+  RETURNS TRIGGER AS $$ -- V24
+BEGIN
+  -- The old value is unknown, so always re-age (to no aging)
+  PERFORM queue_reage(0);
+  RETURN NULL;
+END;
+$$
+LANGUAGE plpgsql;
+
+CREATE TRIGGER queue_aging_truncated_trigger
+  AFTER TRUNCATE
+  ON configurations
+  FOR EACH STATEMENT
+EXECUTE PROCEDURE queue_aging_truncated();
+
+
 CREATE OR REPLACE FUNCTION enqueue(bibliographicrecordid_ VARCHAR(64),
                                    agencyid_              NUMERIC(6),
                                    provider_              VARCHAR(32),
@@ -561,24 +684,38 @@ LANGUAGE plpgsql;
 
 
 CREATE OR REPLACE FUNCTION dequeue(worker_ VARCHAR(128), no_ INT)
-  RETURNS SETOF QUEUE AS $$ -- V8
+  RETURNS SETOF QUEUE AS $$ -- V8, V24
 DECLARE
   queue_row QUEUE;
+  queue_cur REFCURSOR;
 BEGIN
-  FOR queue_row IN SELECT *
-                   FROM queue
-                   WHERE worker = worker_
-                   ORDER BY priority, queued
-                   FOR UPDATE SKIP LOCKED
-  LIMIT no_ LOOP
-  BEGIN
+  -- NOTE: RawRepoQueueDAOIT.testDequeueUsesIndex checks the index each branch uses
+  IF queue_priority_aging() > 0
+  THEN -- Uses queue_idx_worker_aged
+    OPEN queue_cur FOR SELECT *
+                       FROM queue
+                       WHERE worker = worker_
+                       ORDER BY aged
+                       FOR UPDATE SKIP LOCKED
+                       LIMIT no_;
+  ELSE -- Uses queue_idx_worker
+    OPEN queue_cur FOR SELECT *
+                       FROM queue
+                       WHERE worker = worker_
+                       ORDER BY priority, queued
+                       FOR UPDATE SKIP LOCKED
+                       LIMIT no_;
+  END IF;
+  LOOP
+    FETCH queue_cur INTO queue_row;
+    EXIT WHEN NOT FOUND;
     DELETE FROM queue
     WHERE bibliographicrecordid = queue_row.bibliographicrecordid
           AND agencyid = queue_row.agencyid
           AND worker = worker_;
     RETURN NEXT queue_row;
-  END;
-END LOOP;
+  END LOOP;
+  CLOSE queue_cur;
 END
 $$
 LANGUAGE plpgsql;
\ No newline at end of file
@@ -6,6 +6,11 @@ import java.util.List;
 
 public abstract class RawRepoQueueDAO {
 
+    /**
+     * Largest allowed priority aging (one day per priority point)
+     */
+    public static final int MAX_PRIORITY_AGING = 86400;
+
     public static class Builder {
         private final Connection connection;
 
@@ -33,6 +38,33 @@ public abstract class RawRepoQueueDAO {
 
     public abstract HashMap<String, String> getConfiguration() throws ConfigurationException;
 
+    /**
+     * Get the priority aging of the queue
+     * <p>
+     * When aging is enabled, a job gains one priority point for every
+     * {@code seconds} it has been on the queue, so low priority jobs cannot
+     * be starved indefinitely by high priority traffic.
+     *
+     * @return number of seconds on the queue worth one priority point (0 if
+     * aging is disabled)
+     * @throws ConfigurationException done at failure
+     */
+    public abstract int getPriorityAging() throws ConfigurationException;
+
+    /**
+     * Set the priority aging of the queue
+     * <p>
+     * Jobs already on the queue are re-aged according to the new value, in
+     * the callers transaction. Note: if the value changes, this locks the
+     * queue - all enqueue and dequeue will wait until the transaction is
+     * committed or rolled back.
+     *
+     * @param seconds number of seconds on the queue worth one priority point
+     *                (0 disables aging, at most {@link #MAX_PRIORITY_AGING})
+     * @throws ConfigurationException done at failure
+     */
+    public abstract void setPriorityAging(int seconds) throws ConfigurationException;
+
     /**
      * Put job(s) on the queue (in the database)
      *
@@ -25,6 +25,9 @@ public class RawRepoQueueDAOImpl extends RawRepoQueueDAO {
     private static final String CALL_DEQUEUE_MULTI = "SELECT * FROM dequeue(?, ?)";
     private static final String QUEUE_ERROR = "INSERT INTO jobdiag(bibliographicrecordid, agencyid, worker, error, queued) VALUES(?, ?, ?, ?, ?)";
     private static final String CONFIGURATIONS_ALL = "SELECT key, value FROM configurations";
+    private static final String PRIORITY_AGING_KEY = "QUEUE_PRIORITY_AGING_SECONDS";
+    private static final String PRIORITY_AGING_GET = "SELECT queue_priority_aging()";
+    private static final String PRIORITY_AGING_SET = "INSERT INTO configurations (key, value) VALUES(?, ?) ON CONFLICT (key) DO UPDATE SET value = EXCLUDED.value";
 
     public RawRepoQueueDAOImpl(Connection connection) {
         this.connection = connection;
@@ -63,6 +66,37 @@ public class RawRepoQueueDAOImpl extends RawRepoQueueDAO {
         }
     }
 
+    @Override
+    public int getPriorityAging() throws ConfigurationException {
+        try (PreparedStatement stmt = connection.prepareStatement(PRIORITY_AGING_GET)) {
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (resultSet.next()) {
+                    return resultSet.getInt(1);
+                }
+                return 0;
+            }
+        } catch (SQLException ex) {
+            LOGGER.error(LOG_DATABASE_ERROR, ex);
+            throw new ConfigurationException("Error getting priority aging", ex);
+        }
+    }
+
+    @Override
+    public void setPriorityAging(int seconds) throws ConfigurationException {
+        if (seconds < 0 || seconds > MAX_PRIORITY_AGING) {
+            throw new ConfigurationException("Priority aging must be between 0 and " + MAX_PRIORITY_AGING + " seconds, got " + seconds);
+        }
+        LOGGER.info("Setting priority aging to {} seconds", seconds);
+        try (PreparedStatement stmt = connection.prepareStatement(PRIORITY_AGING_SET)) {
+            stmt.setString(1, PRIORITY_AGING_KEY);
+            stmt.setString(2, Integer.toString(seconds));
+            stmt.executeUpdate();
+        } catch (SQLException ex) {
+            LOGGER.error(LOG_DATABASE_ERROR, ex);
+            throw new ConfigurationException("Error setting priority aging", ex);
+        }
+    }
+
     /**
      * Put job(s) on the queue (in the database)
      *
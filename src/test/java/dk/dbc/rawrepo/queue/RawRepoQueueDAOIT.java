@@ -16,6 +16,10 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
@@ -41,7 +45,7 @@ public class RawRepoQueueDAOIT {
     }
 
     private void resetDatabase() throws SQLException {
-        postgres.clearTables("relations", "records", "records_archive", "queue", "queuerules", "queueworkers", "jobdiag");
+        postgres.clearTables("relations", "records", "records_archive", "queue", "queuerules", "queueworkers", "jobdiag", "configurations");
 
         PreparedStatement stmt = connection.prepareStatement("INSERT INTO queueworkers(worker) VALUES(?)");
         stmt.setString(1, "changed");
@@ -171,6 +175,246 @@ public class RawRepoQueueDAOIT {
         assertEquals("RECORD_7", dao.dequeue("changed").getBibliographicRecordId());
     }
 
+    @Test
+    public void testPriorityAging() throws SQLException, QueueException, ConfigurationException {
+        RawRepoQueueDAO dao = RawRepoQueueDAO.builder(connection).build();
+
+        assertEquals(0, dao.getPriorityAging());
+        dao.setPriorityAging(60);
+        assertEquals(60, dao.getPriorityAging());
+        dao.setPriorityAging(1);
+        assertEquals(1, dao.getPriorityAging());
+        assertEquals(Collections.singletonMap("QUEUE_PRIORITY_AGING_SECONDS", "1"), dao.getConfiguration());
+
+        try {
+            dao.setPriorityAging(-1);
+            Assert.fail("Negative priority aging accepted");
+        } catch (ConfigurationException ex) {
+        }
+        try {
+            dao.setPriorityAging(RawRepoQueueDAO.MAX_PRIORITY_AGING + 1);
+            Assert.fail("Too large priority aging accepted");
+        } catch (ConfigurationException ex) {
+        }
+        assertEquals(1, dao.getPriorityAging());
+    }
+
+    @Test
+    public void testPriorityAgingInvalidValue() throws SQLException, QueueException, ConfigurationException {
+        RawRepoQueueDAO dao = RawRepoQueueDAO.builder(connection).build();
+
+        PreparedStatement stmt = connection.prepareStatement("INSERT INTO configurations (key, value) VALUES('QUEUE_PRIORITY_AGING_SECONDS', ?)");
+        for (String value : new String[]{"abc", "0.5", " 60", "1e3", "-1", "86401", "99999999999"}) {
+            postgres.clearTables("configurations");
+            stmt.setString(1, value);
+            stmt.execute();
+            assertEquals(value, 0, dao.getPriorityAging());
+            // Queue operations are not affected by a bad value
+            dao.enqueue("A", 1, "test", true, true);
+            assertNotNull(dao.dequeue("changed"));
+        }
+    }
+
+    @Test
+    public void testDequeuePriorityAging() throws SQLException, QueueException, ConfigurationException {
+        RawRepoQueueDAO dao = RawRepoQueueDAO.builder(connection).build();
+        // One priority point per second on the queue
+        dao.setPriorityAging(1);
+        connection.setAutoCommit(false);
+
+        dao.enqueue("RECORD_OLD", 870970, "test", true, true, 1000);
+        // Has been waiting for an hour - worth 3600 priority points
+        PreparedStatement stmt = connection.prepareStatement("UPDATE queue SET queued = queued - INTERVAL '1 hour' WHERE bibliographicrecordid = ?");
+        stmt.setString(1, "RECORD_OLD");
+        stmt.execute();
+        dao.enqueue("RECORD_NEW", 870970, "test", true, true, 10);
+        dao.enqueue("RECORD_DEFAULT", 870970, "test", true, true, 1000);
+        connection.commit();
+
+        assertEquals("RECORD_OLD", dao.dequeue("changed").getBibliographicRecordId());
+        assertEquals("RECORD_NEW", dao.dequeue("changed").getBibliographicRecordId());
+        assertEquals("RECORD_DEFAULT", dao.dequeue("changed").getBibliographicRecordId());
+        connection.rollback();
+
+        // Without aging strict priority order applies
+        dao.setPriorityAging(0);
+        connection.commit();
+        assertEquals("RECORD_NEW", dao.dequeue("changed").getBibliographicRecordId());
+        assertEquals("RECORD_OLD", dao.dequeue("changed").getBibliographicRecordId());
+        assertEquals("RECORD_DEFAULT", dao.dequeue("changed").getBibliographicRecordId());
+    }
+
+    @Test
+    public void testDequeuePriorityAgingChanged() throws SQLException, QueueException, ConfigurationException {
+        RawRepoQueueDAO dao = RawRepoQueueDAO.builder(connection).build();
+        connection.setAutoCommit(false);
+
+        // Queued without aging, then aging is turned on
+        dao.enqueue("RECORD_DEFAULT", 870970, "test", true, true, 1000);
+        connection.commit();
+        dao.setPriorityAging(1);
+        dao.enqueue("RECORD_HIGH", 870970, "test", true, true, 10);
+        connection.commit();
+
+        assertEquals("RECORD_HIGH", dao.dequeue("changed").getBibliographicRecordId());
+        assertEquals("RECORD_DEFAULT", dao.dequeue("changed").getBibliographicRecordId());
+        connection.commit();
+
+        // Queued with slow aging, then aging is made faster
+        dao.setPriorityAging(3600);
+        dao.enqueue("RECORD_OLD", 870970, "test", true, true, 1000);
+        PreparedStatement stmt = connection.prepareStatement("UPDATE queue SET queued = queued - INTERVAL '1 hour' WHERE bibliographicrecordid = ?");
+        stmt.setString(1, "RECORD_OLD");
+        stmt.execute();
+        connection.commit();
+        dao.setPriorityAging(1);
+        dao.enqueue("RECORD_NEW", 870970, "test", true, true, 10);
+        connection.commit();
+
+        assertEquals("RECORD_OLD", dao.dequeue("changed").getBibliographicRecordId());
+        assertEquals("RECORD_NEW", dao.dequeue("changed").getBibliographicRecordId());
+        connection.rollback();
+
+        // Direct edits of the configurations table are handled too
+        stmt = connection.prepareStatement("UPDATE configurations SET value = '3600' WHERE key = 'QUEUE_PRIORITY_AGING_SECONDS'");
+        stmt.execute();
+        connection.commit();
+
+        assertEquals("RECORD_NEW", dao.dequeue("changed").getBibliographicRecordId());
+        assertEquals("RECORD_OLD", dao.dequeue("changed").getBibliographicRecordId());
+        connection.commit();
+    }
+
+    @Test
+    public void testPriorityAgingUnchangedValue() throws SQLException, QueueException, ConfigurationException {
+        RawRepoQueueDAO dao = RawRepoQueueDAO.builder(connection).build();
+        dao.setPriorityAging(1);
+        dao.enqueue("A", 1, "test", true, true);
+        String versions = getQueueRowVersions();
+
+        // Same effective value - the queue is not rewritten
+        dao.setPriorityAging(1);
+        connection.prepareStatement("UPDATE configurations SET value = value").execute();
+        connection.prepareStatement("UPDATE configurations SET value = '01' WHERE key = 'QUEUE_PRIORITY_AGING_SECONDS'").execute();
+        assertEquals(versions, getQueueRowVersions());
+
+        dao.setPriorityAging(2);
+        Assert.assertNotEquals(versions, getQueueRowVersions());
+    }
+
+    @Test
+    public void testPriorityAgingTruncated() throws SQLException, QueueException, ConfigurationException {
+        RawRepoQueueDAO dao = RawRepoQueueDAO.builder(connection).build();
+        dao.setPriorityAging(1);
+        dao.enqueue("A", 1, "test", true, true);
+        assertEquals(2, countQueueRows("aged <> queued"));
+
+        connection.prepareStatement("TRUNCATE configurations").execute();
+        assertEquals(0, dao.getPriorityAging());
+        assertEquals(0, countQueueRows("aged <> queued"));
+    }
+
+    @Test
+    public void testPriorityAgingConcurrentDequeue() throws Exception {
+        RawRepoQueueDAO dao = RawRepoQueueDAO.builder(connection).build();
+        for (int i = 0; i < 10; i++) {
+            dao.enqueue("rec" + i, 123456, "test", true, true);
+        }
+
+        PostgresITConnection otherPostgres = new PostgresITConnection("rawrepo");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Connection otherConnection = otherPostgres.getConnection();
+            RawRepoQueueDAO otherDao = RawRepoQueueDAO.builder(otherConnection).build();
+
+            // Setting is changed while a worker is dequeuing
+            connection.setAutoCommit(false);
+            assertNotNull(dao.dequeue("changed"));
+            Future<?> setter = executor.submit(() -> {
+                otherDao.setPriorityAging(1);
+                return null;
+            });
+            Thread.sleep(500);
+            Assert.assertFalse("Setter should wait for the worker", setter.isDone());
+            assertNotNull(dao.dequeue("changed"));
+            connection.commit();
+            setter.get(10, TimeUnit.SECONDS);
+            assertEquals(1, dao.getPriorityAging());
+
+            // Worker dequeues while the setting is being changed
+            otherConnection.setAutoCommit(false);
+            otherDao.setPriorityAging(2);
+            Future<QueueItem> worker = executor.submit(() -> dao.dequeue("changed"));
+            Thread.sleep(500);
+            Assert.assertFalse("Worker should wait for the setter", worker.isDone());
+            otherConnection.commit();
+            assertNotNull(worker.get(10, TimeUnit.SECONDS));
+            connection.commit();
+            assertEquals(2, dao.getPriorityAging());
+        } finally {
+            executor.shutdownNow();
+            otherPostgres.close();
+        }
+    }
+
+    @Test
+    public void testDequeueUsesIndex() throws SQLException, QueueException, ConfigurationException {
+        RawRepoQueueDAO dao = RawRepoQueueDAO.builder(connection).build();
+        for (int i = 0; i < 10; i++) {
+            dao.enqueue("rec" + i, 123456, "test", true, true, 1000 - i);
+        }
+
+        // Tiny tables are sequentially scanned and sorted regardless of indexes.
+        // Set before dequeue() is called, as plpgsql caches its plans.
+        connection.prepareStatement("SET enable_seqscan = off").execute();
+        connection.prepareStatement("SET enable_bitmapscan = off").execute();
+        connection.prepareStatement("SET enable_sort = off").execute();
+        // Index scan counters for the current transaction
+        connection.setAutoCommit(false);
+
+        long aged = getIndexScans("queue_idx_worker_aged");
+        long strict = getIndexScans("queue_idx_worker");
+        assertNotNull(dao.dequeue("changed"));
+        assertEquals(aged, getIndexScans("queue_idx_worker_aged"));
+        Assert.assertTrue(getIndexScans("queue_idx_worker") > strict);
+
+        dao.setPriorityAging(1);
+        aged = getIndexScans("queue_idx_worker_aged");
+        strict = getIndexScans("queue_idx_worker");
+        assertNotNull(dao.dequeue("changed"));
+        Assert.assertTrue(getIndexScans("queue_idx_worker_aged") > aged);
+        assertEquals(strict, getIndexScans("queue_idx_worker"));
+        connection.rollback();
+    }
+
+    private long getIndexScans(String index) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT pg_stat_get_xact_numscans(CAST(? AS REGCLASS))")) {
+            stmt.setString(1, index);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        }
+    }
+
+    private String getQueueRowVersions() throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT string_agg(xmin :: TEXT, ',' ORDER BY worker) FROM queue")) {
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                resultSet.next();
+                return resultSet.getString(1);
+            }
+        }
+    }
+
+    private int countQueueRows(String where) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(*) FROM queue WHERE " + where)) {
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        }
+    }
+
     @Test
     public void testQueueFail() throws SQLException, QueueException {
         RawRepoQueueDAO dao = RawRepoQueueDAO.builder(connection).build();